@@ -14,6 +14,8 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.Savepoint;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -22,8 +24,44 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.FileWriter;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.TreeMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Base64;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import java.lang.Math;
 import java.lang.StringBuilder;
@@ -40,6 +78,10 @@ import java.time.LocalDate;
 public class Ticketmaster{
 	//reference to physical database connection
 	private Connection _connection = null;
+	//connection parameters, kept for components that need a connection of their own
+	private String _url = null;
+	private String _user = null;
+	private String _passwd = null;
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 	
 	public Ticketmaster(String dbname, String dbport, String user, String passwd) throws SQLException {
@@ -51,6 +93,9 @@ public class Ticketmaster{
 			
 			// obtain a physical connection
 	        this._connection = DriverManager.getConnection(url, user, passwd);
+	        this._url = url;
+	        this._user = user;
+	        this._passwd = passwd;
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -181,7 +226,57 @@ public class Ticketmaster{
 		stmt.close ();
 		return rowCount;
 	}
-	
+
+	/**
+	 * Callback used by executeQueryAndStreamResult, invoked once per row
+	 * while the cursor is positioned on it.
+	 */
+	public interface RowHandler {
+		void row (ResultSet rs) throws SQLException;
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and hands each row to the handler
+	 * instead of building a list, so large tables can be read in a single pass.
+	 * Postgres only honours the fetch size inside a transaction, so autocommit
+	 * is switched off for the duration of the read.  If the caller already has
+	 * autocommit off, the read runs in the caller's transaction.
+	 *
+	 * @param query the input query string
+	 * @param fetchSize the number of rows fetched per round trip
+	 * @param handler the callback receiving each row
+	 * @return the number of rows streamed
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndStreamResult (String query, int fetchSize, RowHandler handler) throws SQLException {
+		boolean autoCommit = this._connection.getAutoCommit ();
+		if (autoCommit) this._connection.setAutoCommit (false);
+
+		//creates a statement object
+		Statement stmt = this._connection.createStatement ();
+		int rowCount = 0;
+		try {
+			stmt.setFetchSize (fetchSize);
+
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery (query);
+			while (rs.next ()){
+				handler.row (rs);
+				++rowCount;
+			}//end while
+			rs.close ();
+		} finally {
+			stmt.close ();
+			if (autoCommit) {
+				// read-only, nothing to keep
+				this._connection.rollback ();
+				this._connection.setAutoCommit (true);
+			}//end if
+		}//end try
+		return rowCount;
+	}//end executeQueryAndStreamResult
+
 	/**
 	 * Method to fetch the last value from sequence. This
 	 * method issues the query to the DBMS and returns the current 
@@ -201,9 +296,13 @@ public class Ticketmaster{
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to close the physical connection if it is open, stopping the
+	 * change feed first if it was started.
 	 */
 	public void cleanup(){
+		if (changeFeed != null){
+			changeFeed.close ();
+		}//end if
 		try{
 			if (this._connection != null){
 				this._connection.close ();
@@ -246,6 +345,7 @@ public class Ticketmaster{
 			String user = args[2];
 			
 			esql = new Ticketmaster (dbname, dbport, user, "");
+			setupChangeFeed(esql);
 			
 			boolean keepon = true;
 			while(keepon){
@@ -266,6 +366,11 @@ public class Ticketmaster{
 				System.out.println("13. List the Title, Duration, Date, and Time of Shows Playing a Given Movie at a Given Cinema During a Date Range");
 				System.out.println("14. List the Movie Title, Show Date & Start Time, Theater Name, and Cinema Seat Number for all Bookings of a Given User");
 				System.out.println("15. EXIT");
+				System.out.println("16. Occupancy, Revenue and Popularity Report");
+				System.out.println("17. High-Throughput Booking Mode (On-Sale Events)");
+				System.out.println("18. Log In");
+				System.out.println("19. Benchmark Password Hashing");
+				System.out.println("20. Watch Seat Availability (Live Change Feed)");
 				
 				/*
 				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
@@ -286,6 +391,11 @@ public class Ticketmaster{
 					case 13: ListMovieAndShowInfoAtCinemaInDateRange(esql); break;
 					case 14: ListBookingInfoForUser(esql); break;
 					case 15: keepon = false; break;
+					case 16: GenerateReport(esql); break;
+					case 17: BulkBooking(esql); break;
+					case 18: Login(esql); break;
+					case 19: BenchmarkLogin(esql); break;
+					case 20: WatchSeatAvailability(esql); break;
 				}
 			}
 		}catch(Exception e){
@@ -320,7 +430,6 @@ public class Ticketmaster{
 	}//end readChoice
 	
 	public static void AddUser(Ticketmaster esql){//1
-		String abc = "1234567890abcdef";
 		String fname;
 		String lname;
 		String email;
@@ -332,7 +441,7 @@ public class Ticketmaster{
 			System.out.println("Last Name: ");
 			lname = in.readLine();
 			System.out.println("E-mail: ");
-			email = in.readLine();
+			email = in.readLine().trim();
 			System.out.println("Phone: ");
 			phone = in.readLine();
 			System.out.println("Password: ");
@@ -372,12 +481,25 @@ public class Ticketmaster{
 			valid = false;
 			System.out.println("Error: Password cannot be empty.");
 		}
-		StringBuilder pwbuilder = new StringBuilder(64);
-		for (int i = 0; i < 64; i++) {
-			pwbuilder.append(abc.charAt((int)(Math.random() * 16.0)));
+		String pwhash = null;
+		if (valid) {
+			try {
+				final String password = pw;
+				pwhash = hashExecutor.submit(new Callable<String>() {
+					public String call() throws Exception {
+						return PasswordHasher.hash(password);
+					}
+				}).get(HASH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			} catch (RejectedExecutionException e) {
+				valid = false;
+				System.out.println("Error: Too many password requests; try again.");
+			} catch (Exception e) {
+				valid = false;
+				System.err.println(e.toString());
+			}
 		}
 		if (valid) {
-			String query = String.format("INSERT INTO users(fname, lname, email, phone, pwd) VALUES ('%s','%s','%s',%d,'%s');", fname, lname, email, phoneInt, pwbuilder.toString());
+			String query = String.format("INSERT INTO users(fname, lname, email, phone, pwd) VALUES ('%s','%s','%s',%d,'%s');", fname, lname, email, phoneInt, pwhash);
 			try {
 				esql.executeUpdate(query);
 			} catch (Exception e) {
@@ -391,9 +513,10 @@ public class Ticketmaster{
 	
 	public static void AddBooking(Ticketmaster esql) throws Exception {//2
 		System.out.println("E-Mail: ");
-		String email = in.readLine();
+		String email = in.readLine().trim();
 		int bid = 0;
 		try {
+			// MAX+1 can collide with another terminal; BookingQueue retries on that, this path does not
 			bid = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT MAX(bid)+1 a FROM bookings;").get(0).get(0));
 		} catch (Exception e) {
 			System.err.println(e.toString());
@@ -462,6 +585,7 @@ public class Ticketmaster{
 			} catch (Exception e) {
 				System.err.println(e.toString());
 			}
+			invalidateReportCache();
 		} else {
 			System.out.println("Query failed; no data affected.");
 		}
@@ -510,6 +634,7 @@ public class Ticketmaster{
 			} catch (Exception e) {
 				System.out.println(e.toString());
 			}
+			invalidateReportCache();
 		}
 	}
 	
@@ -520,6 +645,7 @@ public class Ticketmaster{
 		} catch (Exception e) {
 			System.out.println(e.toString());
 		}
+		invalidateReportCache();
 	}
 	
 	public static void ChangeSeatsForBooking(Ticketmaster esql) throws Exception{//5
@@ -597,6 +723,7 @@ public class Ticketmaster{
 			} catch (Exception e) {
 				System.out.println(e.toString());
 			}
+			invalidateReportCache();
 		}
 	}
 	
@@ -610,6 +737,7 @@ public class Ticketmaster{
 		} catch (Exception e) {
 			System.err.println(e.toString());
 		}
+		invalidateReportCache();
 	}
 	
 	public static void RemoveShowsOnDate(Ticketmaster esql){//8
@@ -739,4 +867,1620 @@ public class Ticketmaster{
 			}
 	}
 	
+	/*
+	 * Reporting (option 16).  shows, cinemas, bookings and showseats are each
+	 * read in a single streamed pass within one snapshot; the per-show and
+	 * per-cinema aggregation over showseats is split into sid ranges on a
+	 * fork-join pool and the per-movie and per-day figures are rolled up from
+	 * the per-show results.  The finished report is cached until a booking or
+	 * show changes, here or, through the change feed, in another terminal.
+	 */
+	static final int REPORT_FETCH_SIZE = 5000;
+	static final int REPORT_SPLIT_THRESHOLD = 20000;
+	// cid of seats whose theater is unknown
+	static final int NO_CINEMA = -1;
+
+	private static volatile Report cachedReport = null;
+	// bumped on every invalidation so a report built concurrently with a write is not cached
+	private static final AtomicLong reportGeneration = new AtomicLong();
+
+	public static void invalidateReportCache() {
+		reportGeneration.incrementAndGet();
+		cachedReport = null;
+	}
+
+	public static void GenerateReport(Ticketmaster esql) {//16
+		String format;
+		String file;
+		try {
+			System.out.println("Format (csv/json): ");
+			format = in.readLine().trim().toLowerCase();
+			System.out.println("Output file (leave empty for screen): ");
+			file = in.readLine().trim();
+		} catch (Exception e) {
+			System.err.println(e.toString());
+			return;
+		}
+		if (!format.equals("csv") && !format.equals("json")) {
+			System.out.println("Error: Format must be csv or json.");
+			return;
+		}
+
+		// without the change feed, writes from other terminals would go unnoticed
+		boolean coherent = ensureChangeFeed(esql);
+		Report report = coherent ? cachedReport : null;
+		if (report == null) {
+			try {
+				long generation = reportGeneration.get();
+				long start = System.currentTimeMillis();
+				report = buildReport(esql);
+				System.out.println(String.format("Report built in %d ms.", System.currentTimeMillis() - start));
+				if (coherent && reportGeneration.get() == generation) {
+					cachedReport = report;
+				}
+			} catch (Exception e) {
+				System.err.println(e.toString());
+				return;
+			}
+		} else {
+			System.out.println("Using cached report.");
+		}
+
+		try {
+			PrintWriter out = file.isEmpty() ? new PrintWriter(System.out) : new PrintWriter(new FileWriter(file));
+			if (format.equals("csv")) {
+				report.writeCsv(out);
+			} else {
+				report.writeJson(out);
+			}
+			out.flush();
+			if (!file.isEmpty()) {
+				out.close();
+				System.out.println("Report written to " + file);
+			}
+		} catch (Exception e) {
+			System.err.println(e.toString());
+		}
+	}
+
+	static Report buildReport(Ticketmaster esql) throws Exception {
+		final Map<Integer, ShowInfo> shows = new HashMap<>();
+		final Map<Integer, String> cinemas = new HashMap<>();
+		final Map<Integer, String> statuses = new HashMap<>();
+		final Map<Integer, int[]> bookingCounts = new HashMap<>();
+		final List<int[]> seats = new ArrayList<>();
+
+		// all reads share one read-only REPEATABLE READ transaction so they see the same snapshot
+		Connection connection = esql._connection;
+		boolean autoCommit = connection.getAutoCommit();
+		int isolation = connection.getTransactionIsolation();
+		connection.setAutoCommit(false);
+		connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+		connection.setReadOnly(true);
+		try {
+			esql.executeQueryAndStreamResult("SELECT s.sid, s.sdate, m.mvid, m.title FROM shows s INNER JOIN movies m ON m.mvid=s.mvid;",
+				REPORT_FETCH_SIZE, new RowHandler() {
+					public void row(ResultSet rs) throws SQLException {
+						ShowInfo info = new ShowInfo();
+						info.sid = rs.getInt(1);
+						info.day = rs.getString(2);
+						info.mvid = rs.getInt(3);
+						info.title = rs.getString(4);
+						shows.put(info.sid, info);
+					}
+				});
+
+			esql.executeQueryAndStreamResult("SELECT cid, cname FROM cinemas;", REPORT_FETCH_SIZE, new RowHandler() {
+				public void row(ResultSet rs) throws SQLException {
+					cinemas.put(rs.getInt(1), rs.getString(2));
+				}
+			});
+
+			// bid -> status, plus booking counts per show
+			esql.executeQueryAndStreamResult("SELECT bid, sid, status FROM bookings;", REPORT_FETCH_SIZE, new RowHandler() {
+				public void row(ResultSet rs) throws SQLException {
+					String status = rs.getString(3);
+					statuses.put(rs.getInt(1), status);
+					int[] counts = bookingCounts.get(rs.getInt(2));
+					if (counts == null) {
+						counts = new int[2];
+						bookingCounts.put(rs.getInt(2), counts);
+					}
+					if (!"Cancelled".equals(status)) counts[0]++;
+					if ("Pending".equals(status)) counts[1]++;
+				}
+			});
+
+			// each seat is attributed to the cinema its theater belongs to, so a show
+			// playing in several cinemas is split between them; ordered by sid so each
+			// show's seats are contiguous and can be split on sid boundaries
+			esql.executeQueryAndStreamResult(
+				"SELECT ss.sid, t.cid, ss.bid, ss.price FROM showseats ss " +
+				"LEFT JOIN cinemaseats cs ON cs.csid=ss.csid LEFT JOIN theaters t ON t.tid=cs.tid ORDER BY ss.sid;",
+				REPORT_FETCH_SIZE, new RowHandler() {
+					public void row(ResultSet rs) throws SQLException {
+						int sid = rs.getInt(1);
+						int cid = rs.getInt(2);
+						if (rs.wasNull()) cid = NO_CINEMA;
+						int bid = rs.getInt(3);
+						if (rs.wasNull()) bid = 0;
+						seats.add(new int[]{sid, cid, bid, rs.getInt(4)});
+					}
+				});
+		} finally {
+			connection.rollback();
+			connection.setReadOnly(false);
+			connection.setTransactionIsolation(isolation);
+			connection.setAutoCommit(autoCommit);
+		}
+
+		Map<Long, Stats> perShowAndCinema = ForkJoinPool.commonPool().invoke(new ShowStatsTask(seats, statuses, 0, seats.size()));
+
+		Report report = new Report();
+		for (Map.Entry<Long, Stats> entry : perShowAndCinema.entrySet()) {
+			int sid = (int) (entry.getKey() >> 32);
+			int cid = (int) (long) entry.getKey();
+			statsFor(report.shows, sid).addSeats(entry.getValue());
+			// seats without a theater are left out of the cinema level
+			if (cid != NO_CINEMA) statsFor(report.cinemas, cid, cinemas.get(cid)).add(entry.getValue());
+		}
+		for (Map.Entry<Integer, int[]> entry : bookingCounts.entrySet()) {
+			statsFor(report.shows, entry.getKey()).addBookings(entry.getValue()[0], entry.getValue()[1]);
+		}
+		for (Map.Entry<Integer, Stats> entry : report.shows.entrySet()) {
+			ShowInfo info = shows.get(entry.getKey());
+			if (info == null) continue;
+			Stats stats = entry.getValue().named(info.title);
+			statsFor(report.movies, info.mvid, info.title).add(stats);
+			statsFor(report.days, info.day, info.day).add(stats);
+		}
+		return report;
+	}
+
+	static long showCinemaKey(int sid, int cid) {
+		return ((long) sid << 32) | (cid & 0xffffffffL);
+	}
+
+	static <K> Stats statsFor(Map<K, Stats> map, K key) {
+		return statsFor(map, key, null);
+	}
+
+	static <K> Stats statsFor(Map<K, Stats> map, K key, String name) {
+		Stats stats = map.get(key);
+		if (stats == null) {
+			stats = new Stats();
+			stats.name = name;
+			map.put(key, stats);
+		}
+		return stats;
+	}
+
+	static class ShowInfo {
+		int sid;
+		int mvid;
+		String day;
+		String title;
+	}
+
+	static class Stats {
+		String name;
+		long seats;
+		long booked;
+		long revenue;
+		long bookings;
+		long pending;
+
+		void add(Stats other) {
+			seats += other.seats;
+			booked += other.booked;
+			revenue += other.revenue;
+			bookings += other.bookings;
+			pending += other.pending;
+		}
+
+		void addSeats(Stats other) {
+			seats += other.seats;
+			booked += other.booked;
+			revenue += other.revenue;
+		}
+
+		void addBookings(int active, int pendingCount) {
+			bookings += active;
+			pending += pendingCount;
+		}
+
+		Stats named(String name) {
+			this.name = name;
+			return this;
+		}
+
+		double occupancy() {
+			return seats == 0 ? 0.0 : (double) booked / seats;
+		}
+	}
+
+	/**
+	 * Aggregates seats, booked seats, revenue and distinct bookings per show and
+	 * cinema (keyed by showCinemaKey) over [lo, hi) of the sid-ordered showseats
+	 * rows.  Splits are moved forward to the next sid boundary so no show is
+	 * shared between two subtasks and results can be merged without combining
+	 * entries.
+	 */
+	static class ShowStatsTask extends RecursiveTask<Map<Long, Stats>> {
+		private static final long serialVersionUID = 1L;
+
+		final List<int[]> seats;
+		final Map<Integer, String> statuses;
+		final int lo;
+		final int hi;
+
+		ShowStatsTask(List<int[]> seats, Map<Integer, String> statuses, int lo, int hi) {
+			this.seats = seats;
+			this.statuses = statuses;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected Map<Long, Stats> compute() {
+			if (hi - lo > REPORT_SPLIT_THRESHOLD) {
+				int mid = (lo + hi) >>> 1;
+				int sid = seats.get(mid)[0];
+				while (mid < hi && seats.get(mid)[0] == sid) mid++;
+				if (mid < hi) {
+					ShowStatsTask left = new ShowStatsTask(seats, statuses, lo, mid);
+					left.fork();
+					Map<Long, Stats> result = new ShowStatsTask(seats, statuses, mid, hi).compute();
+					result.putAll(left.join());
+					return result;
+				}
+			}
+			Map<Long, Stats> result = new HashMap<>();
+			Map<Long, Set<Integer>> counted = new HashMap<>();
+			for (int i = lo; i < hi; i++) {
+				int[] seat = seats.get(i);
+				long key = showCinemaKey(seat[0], seat[1]);
+				Stats stats = statsFor(result, key);
+				stats.seats++;
+				if (seat[2] != 0) {
+					String status = statuses.get(seat[2]);
+					stats.booked++;
+					if ("Paid".equals(status)) stats.revenue += seat[3];
+					Set<Integer> bids = counted.get(key);
+					if (bids == null) {
+						bids = new HashSet<>();
+						counted.put(key, bids);
+					}
+					if (bids.add(seat[2])) {
+						stats.addBookings("Cancelled".equals(status) ? 0 : 1, "Pending".equals(status) ? 1 : 0);
+					}
+				}
+			}
+			return result;
+		}
+	}
+
+	static class Report {
+		final Map<Integer, Stats> shows = new TreeMap<>();
+		final Map<Integer, Stats> cinemas = new TreeMap<>();
+		final Map<Integer, Stats> movies = new TreeMap<>();
+		final Map<String, Stats> days = new TreeMap<>();
+
+		void writeCsv(PrintWriter out) {
+			out.println("level,key,name,seats,booked,occupancy,bookings,pending,revenue");
+			writeCsv(out, "show", shows);
+			writeCsv(out, "cinema", cinemas);
+			writeCsv(out, "movie", movies);
+			writeCsv(out, "day", days);
+		}
+
+		void writeCsv(PrintWriter out, String level, Map<?, Stats> rows) {
+			for (Map.Entry<?, Stats> entry : rows.entrySet()) {
+				Stats s = entry.getValue();
+				String name = s.name == null ? "" : "\"" + s.name.replace("\"", "\"\"") + "\"";
+				out.println(String.format(Locale.ROOT, "%s,%s,%s,%d,%d,%.4f,%d,%d,%d", level, entry.getKey(), name,
+					s.seats, s.booked, s.occupancy(), s.bookings, s.pending, s.revenue));
+			}
+		}
+
+		void writeJson(PrintWriter out) {
+			out.println("{");
+			writeJson(out, "shows", shows, false);
+			writeJson(out, "cinemas", cinemas, false);
+			writeJson(out, "movies", movies, false);
+			writeJson(out, "days", days, true);
+			out.println("}");
+		}
+
+		void writeJson(PrintWriter out, String level, Map<?, Stats> rows, boolean last) {
+			out.println("  \"" + level + "\": [");
+			int i = 0;
+			for (Map.Entry<?, Stats> entry : rows.entrySet()) {
+				Stats s = entry.getValue();
+				out.print(String.format(Locale.ROOT, "    {\"key\": %s, \"name\": %s, \"seats\": %d, \"booked\": %d, \"occupancy\": %.4f, \"bookings\": %d, \"pending\": %d, \"revenue\": %d}",
+					jsonKey(entry.getKey()), jsonString(s.name), s.seats, s.booked, s.occupancy(), s.bookings, s.pending, s.revenue));
+				out.println(++i < rows.size() ? "," : "");
+			}
+			out.println(last ? "  ]" : "  ],");
+		}
+
+		static String jsonKey(Object key) {
+			return key instanceof String ? jsonString((String) key) : String.valueOf(key);
+		}
+
+		static String jsonString(String value) {
+			if (value == null) return "null";
+			StringBuilder sb = new StringBuilder("\"");
+			for (char c : value.toCharArray()) {
+				if (c == '"' || c == '\\') sb.append('\\').append(c);
+				else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+				else sb.append(c);
+			}
+			return sb.append('"').toString();
+		}
+	}
+
+	/*
+	 * High-throughput booking mode (option 17).  Bookings are handed to a
+	 * BookingQueue instead of being written one by one; its writer thread drains
+	 * them in groups and commits each group once, so the commit cost is shared.
+	 * Input lines are "email,status,sid,seat seat ..." read from a file, or from
+	 * the terminal until an empty line.
+	 */
+	static final int BOOKING_QUEUE_CAPACITY = 4096;
+	static final int BOOKING_GROUP_SIZE = 256;
+
+	public static void BulkBooking(Ticketmaster esql) {//17
+		List<String> lines = new ArrayList<>();
+		try {
+			System.out.println("Bookings file (leave empty to type bookings as email,status,sid,seats): ");
+			String file = in.readLine().trim();
+			BufferedReader reader = file.isEmpty() ? in : new BufferedReader(new FileReader(file));
+			String line;
+			while ((line = reader.readLine()) != null && !(file.isEmpty() && line.isEmpty())) {
+				if (!line.trim().isEmpty()) lines.add(line.trim());
+			}
+			if (reader != in) reader.close();
+		} catch (Exception e) {
+			System.err.println(e.toString());
+			return;
+		}
+
+		List<CompletableFuture<BookingResult>> futures = new ArrayList<>();
+		List<String> submitted = new ArrayList<>();
+		BookingQueue queue;
+		try {
+			queue = new BookingQueue(esql, BOOKING_QUEUE_CAPACITY, BOOKING_GROUP_SIZE);
+		} catch (SQLException e) {
+			System.err.println(e.toString());
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			for (String line : lines) {
+				String[] parts = line.split(",", 4);
+				if (parts.length != 4) {
+					System.out.println("Error: Malformed booking line: " + line);
+					continue;
+				}
+				// a seat listed twice is booked once
+				Set<Integer> seatSet = new LinkedHashSet<>();
+				Scanner s = new Scanner(parts[3]);
+				while (s.hasNextInt()) {
+					seatSet.add(s.nextInt());
+				}
+				s.close();
+				List<Integer> seats = new ArrayList<>(seatSet);
+				int sid;
+				try {
+					sid = Integer.parseInt(parts[2].trim());
+				} catch (NumberFormatException e) {
+					System.out.println("Error: Invalid show ID: " + line);
+					continue;
+				}
+				if (seats.isEmpty()) {
+					System.out.println("Error: Specify at least one seat: " + line);
+					continue;
+				}
+				// blocks while the queue is full
+				futures.add(queue.submit(parts[0].trim(), parts[1].trim(), sid, seats));
+				submitted.add(line);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IllegalStateException e) {
+			System.out.println("Error: " + e.getMessage() + "; remaining bookings were not submitted.");
+		} finally {
+			queue.close();
+			invalidateReportCache();
+		}
+
+		int booked = 0;
+		int conflicts = 0;
+		int failed = 0;
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				BookingResult result = futures.get(i).join();
+				if (result.booked()) {
+					booked++;
+				} else if (result.error == null) {
+					conflicts++;
+					System.out.println(String.format("Seat conflict %s for: %s", result.conflicts, submitted.get(i)));
+				} else {
+					failed++;
+					System.out.println(String.format("Error: %s for: %s", result.error, submitted.get(i)));
+				}
+			} catch (Exception e) {
+				failed++;
+				System.out.println(String.format("Error: %s for: %s", e.getCause() == null ? e : e.getCause(), submitted.get(i)));
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%d booked, %d seat conflicts, %d failed in %.2f s (%.0f bookings/s).",
+			booked, conflicts, failed, seconds, seconds == 0 ? 0.0 : futures.size() / seconds));
+	}
+
+	/**
+	 * Outcome of a queued booking: either the booking ID that was assigned, the
+	 * seats that were already taken by other bookings, or the error that
+	 * rejected the booking (unknown user, show or seat, or a database error).
+	 */
+	static class BookingResult {
+		final int bid;
+		final List<Integer> conflicts;
+		final String error;
+
+		BookingResult(int bid, List<Integer> conflicts, String error) {
+			this.bid = bid;
+			this.conflicts = conflicts;
+			this.error = error;
+		}
+
+		boolean booked() {
+			return bid > 0;
+		}
+	}
+
+	static class PendingBooking {
+		final String email;
+		final String status;
+		final int sid;
+		final List<Integer> seats;
+		final CompletableFuture<BookingResult> future = new CompletableFuture<>();
+
+		PendingBooking(String email, String status, int sid, List<Integer> seats) {
+			this.email = email;
+			this.status = status;
+			this.sid = sid;
+			this.seats = seats;
+		}
+	}
+
+	/**
+	 * Write-behind booking queue.  Callers enqueue on a lock-free queue and get a
+	 * future back; a single writer thread drains up to groupSize bookings at a
+	 * time and applies them in one transaction, each under its own savepoint so
+	 * a seat conflict only rolls back that booking.  Seats are claimed with
+	 * "bid IS NULL" in the UPDATE, so seats taken by another terminal are
+	 * reported as conflicts rather than overwritten.  capacity bounds the
+	 * bookings queued or in flight; submit blocks once it is reached.
+	 *
+	 * Booking IDs are MAX(bid)+1, as in AddBooking, which still allocates them
+	 * that way.  When a concurrent AddBooking takes the ID first, the insert
+	 * fails with a unique violation; the booking is retried with a re-read ID
+	 * rather than failing, so one collision does not sink the rest of the group.
+	 *
+	 * The queue uses the Ticketmaster connection, which must not be used by
+	 * anything else until close() returns.
+	 */
+	static class BookingQueue implements Runnable {
+		static final long IDLE_PARK_NANOS = 1000000L;
+		static final int BID_RETRIES = 5;
+		static final String UNIQUE_VIOLATION = "23505";
+
+		private final Connection connection;
+		private final ConcurrentLinkedQueue<PendingBooking> queue = new ConcurrentLinkedQueue<>();
+		private final Semaphore slots;
+		private final int groupSize;
+		private final boolean autoCommit;
+		private final PreparedStatement insertBooking;
+		private final PreparedStatement claimSeat;
+		private final PreparedStatement nextBid;
+		private final PreparedStatement userExists;
+		private final PreparedStatement showExists;
+		private final PreparedStatement seatExists;
+		private final Thread writer;
+		private volatile boolean closed = false;
+
+		BookingQueue(Ticketmaster esql, int capacity, int groupSize) throws SQLException {
+			this.connection = esql._connection;
+			this.slots = new Semaphore(capacity);
+			this.groupSize = groupSize;
+			this.autoCommit = connection.getAutoCommit();
+			this.insertBooking = connection.prepareStatement("INSERT INTO bookings(bid, status, bdatetime, seats, sid, email) VALUES(?, ?, NOW(), ?, ?, ?);");
+			this.claimSeat = connection.prepareStatement("UPDATE showseats SET bid=? WHERE sid=? AND ssid=? AND bid IS NULL;");
+			this.nextBid = connection.prepareStatement("SELECT COALESCE(MAX(bid), 0) + 1 FROM bookings;");
+			this.userExists = connection.prepareStatement("SELECT email FROM users WHERE email=?;");
+			this.showExists = connection.prepareStatement("SELECT sid FROM shows WHERE sid=?;");
+			this.seatExists = connection.prepareStatement("SELECT ssid FROM showseats WHERE sid=? AND ssid=?;");
+			connection.setAutoCommit(false);
+			this.writer = new Thread(this, "booking-writer");
+			this.writer.start();
+		}
+
+		/**
+		 * Queues a booking, blocking while the queue is at capacity.
+		 *
+		 * @throws IllegalStateException if the queue is closed or its writer has stopped
+		 */
+		CompletableFuture<BookingResult> submit(String email, String status, int sid, List<Integer> seats) throws InterruptedException {
+			if (closed) throw new IllegalStateException("Booking queue is closed");
+			// a dead writer never frees a slot, so don't wait on one indefinitely
+			while (!slots.tryAcquire(IDLE_PARK_NANOS, TimeUnit.NANOSECONDS)) {
+				if (!writer.isAlive()) throw new IllegalStateException("Booking writer has stopped");
+			}
+			if (!writer.isAlive()) {
+				slots.release();
+				throw new IllegalStateException("Booking writer has stopped");
+			}
+			PendingBooking booking = new PendingBooking(email, status, sid, seats);
+			queue.offer(booking);
+			LockSupport.unpark(writer);
+			return booking.future;
+		}
+
+		/**
+		 * Stops accepting bookings, waits for the queued ones to be committed and
+		 * hands the connection back in its previous autocommit mode.
+		 */
+		void close() {
+			closed = true;
+			LockSupport.unpark(writer);
+			boolean interrupted = false;
+			while (writer.isAlive()) {
+				try {
+					writer.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			// anything that slipped in after the writer saw the queue empty
+			PendingBooking left;
+			while ((left = queue.poll()) != null) {
+				left.future.completeExceptionally(new IllegalStateException("Booking queue is closed"));
+			}
+			try {
+				insertBooking.close();
+				claimSeat.close();
+				nextBid.close();
+				userExists.close();
+				showExists.close();
+				seatExists.close();
+				connection.setAutoCommit(autoCommit);
+			} catch (SQLException e) {
+				// ignored.
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+
+		public void run() {
+			List<PendingBooking> group = new ArrayList<>(groupSize);
+			while (true) {
+				PendingBooking next;
+				while (group.size() < groupSize && (next = queue.poll()) != null) {
+					group.add(next);
+				}
+				if (group.isEmpty()) {
+					if (closed) break;
+					LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+					continue;
+				}
+				try {
+					commitGroup(group);
+				} finally {
+					// even if the writer is dying, callers must not wait forever
+					for (PendingBooking booking : group) {
+						booking.future.completeExceptionally(new IllegalStateException("Booking writer failed"));
+					}
+					slots.release(group.size());
+					group.clear();
+				}
+			}
+		}
+
+		private void commitGroup(List<PendingBooking> group) {
+			List<BookingResult> results = new ArrayList<>(group.size());
+			// lookups are only reused within the group's transaction
+			Map<String, Boolean> users = new HashMap<>();
+			Map<Integer, Boolean> shows = new HashMap<>();
+			try {
+				int[] bid = {readNextBid()};
+				for (PendingBooking booking : group) {
+					results.add(apply(booking, bid, users, shows));
+				}
+				connection.commit();
+			} catch (SQLException | RuntimeException e) {
+				try {
+					connection.rollback();
+				} catch (SQLException ignored) {
+					// ignored.
+				}
+				for (PendingBooking booking : group) {
+					booking.future.completeExceptionally(e);
+				}
+				return;
+			}
+			for (int i = 0; i < group.size(); i++) {
+				group.get(i).future.complete(results.get(i));
+			}
+		}
+
+		/**
+		 * Applies one booking under a savepoint.  bid holds the next booking ID
+		 * and is advanced past every ID that is used or found taken.
+		 */
+		private BookingResult apply(PendingBooking booking, int[] bid, Map<String, Boolean> users, Map<Integer, Boolean> shows) throws SQLException {
+			Savepoint savepoint = connection.setSavepoint();
+			try {
+				Boolean known = users.get(booking.email);
+				if (known == null) {
+					userExists.setString(1, booking.email);
+					known = exists(userExists);
+					users.put(booking.email, known);
+				}
+				if (!known) {
+					connection.releaseSavepoint(savepoint);
+					return new BookingResult(0, null, "Email does not exist in database.");
+				}
+				known = shows.get(booking.sid);
+				if (known == null) {
+					showExists.setInt(1, booking.sid);
+					known = exists(showExists);
+					shows.put(booking.sid, known);
+				}
+				if (!known) {
+					connection.releaseSavepoint(savepoint);
+					return new BookingResult(0, null, "Show does not exist in database.");
+				}
+
+				for (int attempt = 0; ; attempt++) {
+					try {
+						insertBooking.setInt(1, bid[0]);
+						insertBooking.setString(2, booking.status);
+						insertBooking.setInt(3, booking.seats.size());
+						insertBooking.setInt(4, booking.sid);
+						insertBooking.setString(5, booking.email);
+						insertBooking.executeUpdate();
+						break;
+					} catch (SQLException e) {
+						if (!UNIQUE_VIOLATION.equals(e.getSQLState()) || attempt >= BID_RETRIES) throw e;
+						// taken by another terminal since the ID was read
+						connection.rollback(savepoint);
+						bid[0] = Math.max(bid[0] + 1, readNextBid());
+					}
+				}
+
+				for (int seat : booking.seats) {
+					claimSeat.setInt(1, bid[0]);
+					claimSeat.setInt(2, booking.sid);
+					claimSeat.setInt(3, seat);
+					claimSeat.addBatch();
+				}
+				int[] counts = claimSeat.executeBatch();
+				List<Integer> conflicts = new ArrayList<>();
+				for (int i = 0; i < counts.length; i++) {
+					if (counts[i] != 0) continue;
+					int seat = booking.seats.get(i);
+					seatExists.setInt(1, booking.sid);
+					seatExists.setInt(2, seat);
+					if (!exists(seatExists)) {
+						connection.rollback(savepoint);
+						connection.releaseSavepoint(savepoint);
+						return new BookingResult(0, null, String.format("Seat %d doesn't exist for this show.", seat));
+					}
+					conflicts.add(seat);
+				}
+				if (!conflicts.isEmpty()) {
+					connection.rollback(savepoint);
+					connection.releaseSavepoint(savepoint);
+					return new BookingResult(0, conflicts, null);
+				}
+				connection.releaseSavepoint(savepoint);
+				return new BookingResult(bid[0]++, null, null);
+			} catch (SQLException e) {
+				claimSeat.clearBatch();
+				connection.rollback(savepoint);
+				connection.releaseSavepoint(savepoint);
+				return new BookingResult(0, null, e.getMessage());
+			}
+		}
+
+		private int readNextBid() throws SQLException {
+			ResultSet rs = nextBid.executeQuery();
+			rs.next();
+			int bid = rs.getInt(1);
+			rs.close();
+			return bid;
+		}
+
+		private boolean exists(PreparedStatement stmt) throws SQLException {
+			ResultSet rs = stmt.executeQuery();
+			boolean found = rs.next();
+			rs.close();
+			return found;
+		}
+	}
+
+	/*
+	 * Credentials (options 1, 18 and 19).  Passwords are stored as salted
+	 * PBKDF2-HMAC-SHA256 hashes.  Hashing is deliberately slow, so it runs on a
+	 * small bounded executor: a burst of logins is rejected with "try again"
+	 * instead of piling up threads and starving the rest of the program.
+	 * Successful logins open a session in a bounded cache so repeat requests
+	 * skip both the hash and the database.
+	 */
+	// log2 of the PBKDF2 iteration count; override with -Dticketmaster.passwordCost=N.
+	// 2^20 is above the ~600k iterations currently recommended for PBKDF2-HMAC-SHA256;
+	// the maximum keeps a single hash well inside HASH_TIMEOUT_SECONDS.
+	static final int MIN_PASSWORD_COST = 10;
+	static final int MAX_PASSWORD_COST = 22;
+	static final int PASSWORD_COST = passwordCost(Integer.getInteger("ticketmaster.passwordCost", 20));
+	static final int HASH_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	static final int HASH_QUEUE_CAPACITY = 64;
+	static final long HASH_TIMEOUT_SECONDS = 10;
+	static final int SESSION_CACHE_SIZE = 1024;
+	static final long SESSION_TTL_MILLIS = 30 * 60 * 1000L;
+
+	static final ThreadPoolExecutor hashExecutor = newHashExecutor();
+	static final AuthCache authCache = new AuthCache(SESSION_CACHE_SIZE, SESSION_TTL_MILLIS);
+
+	static int passwordCost(int cost) {
+		if (cost < MIN_PASSWORD_COST || cost > MAX_PASSWORD_COST) {
+			throw new IllegalArgumentException(String.format("ticketmaster.passwordCost must be between %d and %d, got %d",
+				MIN_PASSWORD_COST, MAX_PASSWORD_COST, cost));
+		}
+		return cost;
+	}
+
+	static ThreadPoolExecutor newHashExecutor() {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadPoolExecutor(HASH_THREADS, HASH_THREADS, 0L, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(HASH_QUEUE_CAPACITY),
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "password-hash-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			},
+			new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	public static void Login(Ticketmaster esql) {//18
+		// the feed evicts sessions of users changed elsewhere
+		boolean coherent = ensureChangeFeed(esql);
+		String token;
+		String email;
+		String pw;
+		try {
+			System.out.println("Session token (leave empty to log in with a password): ");
+			token = in.readLine().trim();
+			if (!token.isEmpty()) {
+				email = authCache.lookup(token);
+				if (email == null) {
+					System.out.println("Error: Session expired or unknown.");
+				} else {
+					System.out.println("Welcome back, " + email + ".");
+				}
+				return;
+			}
+			System.out.println("E-mail: ");
+			email = in.readLine().trim();
+			System.out.println("Password: ");
+			pw = in.readLine();
+		} catch (Exception e) {
+			System.err.println(e.toString());
+			return;
+		}
+
+		token = coherent ? authCache.resume(email, pw) : null;
+		if (token != null) {
+			System.out.println("Logged in. Session token: " + token);
+			return;
+		}
+
+		String stored = null;
+		try {
+			PreparedStatement stmt = esql._connection.prepareStatement("SELECT pwd FROM users WHERE email=?;");
+			try {
+				stmt.setString(1, email);
+				ResultSet rs = stmt.executeQuery();
+				if (rs.next()) stored = rs.getString(1);
+			} finally {
+				stmt.close();
+			}
+		} catch (Exception e) {
+			System.err.println(e.toString());
+			return;
+		}
+
+		boolean ok = false;
+		try {
+			final String password = pw;
+			final String hash = stored;
+			ok = hashExecutor.submit(new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					// hash even for unknown users so the response time does not reveal them
+					return PasswordHasher.verify(password, hash);
+				}
+			}).get(HASH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		} catch (RejectedExecutionException e) {
+			System.out.println("Error: Too many login requests; try again.");
+			return;
+		} catch (Exception e) {
+			System.err.println(e.toString());
+			return;
+		}
+		if (!ok) {
+			System.out.println("Error: Invalid e-mail or password.");
+			return;
+		}
+		System.out.println("Logged in. Session token: " + authCache.open(email, pw));
+	}
+
+	public static void BenchmarkLogin(Ticketmaster esql) {//19
+		int logins;
+		try {
+			System.out.println("Number of logins (default 20): ");
+			String line = in.readLine().trim();
+			logins = line.isEmpty() ? 20 : Integer.parseInt(line);
+		} catch (Exception e) {
+			System.err.println(e.toString());
+			return;
+		}
+		if (logins <= 0) {
+			System.out.println("Error: Number of logins must be positive.");
+			return;
+		}
+
+		try {
+			final String password = "benchmark-password";
+			final String hash = PasswordHasher.hash(password);
+
+			// full logins: one verification per request, never more than the executor queue holds
+			List<Future<Boolean>> inFlight = new ArrayList<>();
+			long start = System.nanoTime();
+			for (int i = 0; i < logins; i++) {
+				if (inFlight.size() >= HASH_QUEUE_CAPACITY) {
+					inFlight.remove(0).get();
+				}
+				inFlight.add(hashExecutor.submit(new Callable<Boolean>() {
+					public Boolean call() throws Exception {
+						return PasswordHasher.verify(password, hash);
+					}
+				}));
+			}
+			for (Future<Boolean> f : inFlight) {
+				f.get();
+			}
+			double hashSeconds = (System.nanoTime() - start) / 1e9;
+
+			// repeat logins: answered from the session cache
+			AuthCache cache = new AuthCache(SESSION_CACHE_SIZE, SESSION_TTL_MILLIS);
+			cache.open("benchmark@example.com", password);
+			start = System.nanoTime();
+			for (int i = 0; i < logins; i++) {
+				cache.resume("benchmark@example.com", password);
+			}
+			double cacheSeconds = (System.nanoTime() - start) / 1e9;
+
+			System.out.println(String.format("Cost %d (%d iterations), %d hash threads.", PASSWORD_COST, 1 << PASSWORD_COST, HASH_THREADS));
+			System.out.println(String.format("Password logins: %d in %.2f s (%.1f logins/s, %.1f ms per hash).",
+				logins, hashSeconds, logins / hashSeconds, hashSeconds * 1000.0 * HASH_THREADS / logins));
+			System.out.println(String.format("Cached logins:   %d in %.4f s (%.0f logins/s).",
+				logins, cacheSeconds, cacheSeconds == 0 ? 0.0 : logins / cacheSeconds));
+		} catch (Exception e) {
+			System.err.println(e.toString());
+		}
+	}
+
+	/**
+	 * Salted PBKDF2-HMAC-SHA256 password hashes in the form
+	 * "cost$salt$hash", with salt and hash in unpadded URL-safe base64 and
+	 * 2^cost iterations.  With a 16 byte salt and a 24 byte hash the encoded
+	 * value is 58 characters and fits the existing 64 character pwd column.
+	 */
+	static class PasswordHasher {
+		static final int SALT_BYTES = 16;
+		static final int HASH_BYTES = 24;
+		static final SecureRandom random = new SecureRandom();
+
+		static String hash(String password) throws Exception {
+			return hash(password, PASSWORD_COST);
+		}
+
+		static String hash(String password, int cost) throws Exception {
+			passwordCost(cost);
+			byte[] salt = new byte[SALT_BYTES];
+			random.nextBytes(salt);
+			Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+			return String.format("%02d$%s$%s", cost, encoder.encodeToString(salt),
+				encoder.encodeToString(pbkdf2(password, salt, 1 << cost)));
+		}
+
+		/**
+		 * Checks a password against a stored hash.  Values that are not in the
+		 * hash format (e.g. rows written before hashing was added) never match,
+		 * but are still hashed at the default cost to keep timing uniform.
+		 */
+		static boolean verify(String password, String stored) throws Exception {
+			String[] parts = stored == null ? new String[0] : stored.trim().split("\\$");
+			int cost = -1;
+			byte[] salt = null;
+			byte[] expected = null;
+			if (parts.length == 3) {
+				try {
+					cost = Integer.parseInt(parts[0]);
+					salt = Base64.getUrlDecoder().decode(parts[1]);
+					expected = Base64.getUrlDecoder().decode(parts[2]);
+				} catch (IllegalArgumentException e) {
+					cost = -1;
+				}
+			}
+			if (cost < MIN_PASSWORD_COST || cost > MAX_PASSWORD_COST || expected.length == 0) {
+				pbkdf2(password, new byte[SALT_BYTES], 1 << PASSWORD_COST);
+				return false;
+			}
+			return MessageDigest.isEqual(expected, pbkdf2(password, salt, 1 << cost));
+		}
+
+		static byte[] pbkdf2(String password, byte[] salt, int iterations) throws Exception {
+			KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BYTES * 8);
+			return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+		}
+	}
+
+	/**
+	 * Bounded, least-recently-used session cache.  A session maps a random token
+	 * to the e-mail that logged in; it also keeps an HMAC of the password under a
+	 * per-process key, so the same user logging in again with the same password
+	 * is handed the live session without hashing or querying.  Sessions expire
+	 * after ttlMillis.
+	 *
+	 * While the change feed runs, a password change or deletion of the user in
+	 * any terminal evicts the session within a batch window, and losing the
+	 * feed clears the cache.  If the feed cannot be started, cached passwords
+	 * are not used, but a session token stays valid for up to ttlMillis after
+	 * the user is changed elsewhere.
+	 */
+	static class AuthCache {
+		static class Session {
+			final String token;
+			final String email;
+			final byte[] fingerprint;
+			final long expires;
+
+			Session(String token, String email, byte[] fingerprint, long expires) {
+				this.token = token;
+				this.email = email;
+				this.fingerprint = fingerprint;
+				this.expires = expires;
+			}
+		}
+
+		private final Map<String, Session> sessions;
+		private final Map<String, Session> sessionsByEmail = new HashMap<>();
+		private final long ttlMillis;
+		private final SecureRandom random = new SecureRandom();
+		private final Mac mac;
+
+		AuthCache(final int capacity, long ttlMillis) {
+			this.ttlMillis = ttlMillis;
+			this.sessions = new LinkedHashMap<String, Session>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+					if (size() <= capacity) return false;
+					forget(eldest.getValue());
+					return true;
+				}
+			};
+			byte[] key = new byte[32];
+			random.nextBytes(key);
+			try {
+				this.mac = Mac.getInstance("HmacSHA256");
+				this.mac.init(new SecretKeySpec(key, "HmacSHA256"));
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/**
+		 * @return the e-mail of a live session, or null if the token is unknown or expired
+		 */
+		synchronized String lookup(String token) {
+			Session session = sessions.get(token);
+			if (session == null) return null;
+			if (expired(session)) {
+				sessions.remove(token);
+				forget(session);
+				return null;
+			}
+			return session.email;
+		}
+
+		/**
+		 * @return the token of a live session opened with this e-mail and password, or null
+		 */
+		synchronized String resume(String email, String password) {
+			Session session = sessionsByEmail.get(email);
+			if (session == null || lookup(session.token) == null) return null;
+			return MessageDigest.isEqual(session.fingerprint, fingerprint(email, password)) ? session.token : null;
+		}
+
+		/**
+		 * Opens a session for credentials that have just been verified.
+		 */
+		synchronized String open(String email, String password) {
+			byte[] bytes = new byte[24];
+			random.nextBytes(bytes);
+			String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+			Session previous = sessionsByEmail.get(email);
+			if (previous != null) sessions.remove(previous.token);
+			Session session = new Session(token, email, fingerprint(email, password), System.currentTimeMillis() + ttlMillis);
+			sessionsByEmail.put(email, session);
+			sessions.put(token, session);
+			return token;
+		}
+
+		private boolean expired(Session session) {
+			return System.currentTimeMillis() > session.expires;
+		}
+
+		/**
+		 * Drops the session of a user changed or deleted elsewhere.
+		 */
+		synchronized void evict(String email) {
+			Session session = sessionsByEmail.remove(email);
+			if (session != null) sessions.remove(session.token);
+		}
+
+		synchronized void clear() {
+			sessions.clear();
+			sessionsByEmail.clear();
+		}
+
+		private void forget(Session session) {
+			if (sessionsByEmail.get(session.email) == session) sessionsByEmail.remove(session.email);
+		}
+
+		private byte[] fingerprint(String email, String password) {
+			mac.update(email.getBytes(StandardCharsets.UTF_8));
+			mac.update((byte) 0);
+			return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/*
+	 * Change feed.  Triggers on bookings, showseats, shows and users publish one
+	 * compact notification per changed row on the ticketmaster_changes channel.
+	 * The ChangeFeed listens on a connection of its own, coalesces the
+	 * notifications per table and key over a short window and hands each batch
+	 * to its subscribers, so caches kept by this program also see writes made
+	 * from other terminals.  The triggers are installed once per database at
+	 * startup (installChangeTriggers); the feed itself is started by the first
+	 * report, login or seat watch (option 20), and caches are only trusted
+	 * while it is running.
+	 */
+	static final String CHANGE_CHANNEL = "ticketmaster_changes";
+	static final int CHANGE_BATCH_MILLIS = 50;
+	static final int CHANGE_BATCH_MAX = 1000;
+	static final long SEAT_COUNT_TIMEOUT_MILLIS = 5000;
+	// bumped whenever the trigger functions or payload format change
+	static final int CHANGE_FEED_VERSION = 2;
+
+	/*
+	 * Payloads are "table,op,sid,id,delta,txid": op is the first letter of
+	 * TG_OP; id is the row's own key (ssid, bid, sid or e-mail) so Postgres does
+	 * not fold notifications for different rows of one transaction together;
+	 * delta is the change in free seats for showseats rows and 0 otherwise; txid
+	 * is the writing transaction, used to order changes against snapshots.
+	 */
+	static final String[] CHANGE_FUNCTIONS = {
+		"CREATE OR REPLACE FUNCTION ticketmaster_notify_showseats() RETURNS trigger AS $$ BEGIN " +
+		"IF TG_OP = 'INSERT' THEN PERFORM pg_notify('" + CHANGE_CHANNEL + "', 'showseats,I,' || NEW.sid || ',' || NEW.ssid || ',' || CASE WHEN NEW.bid IS NULL THEN 1 ELSE 0 END || ',' || txid_current()); " +
+		"ELSIF TG_OP = 'DELETE' THEN PERFORM pg_notify('" + CHANGE_CHANNEL + "', 'showseats,D,' || OLD.sid || ',' || OLD.ssid || ',' || CASE WHEN OLD.bid IS NULL THEN -1 ELSE 0 END || ',' || txid_current()); " +
+		"ELSIF NEW.bid IS DISTINCT FROM OLD.bid OR NEW.price IS DISTINCT FROM OLD.price THEN PERFORM pg_notify('" + CHANGE_CHANNEL + "', 'showseats,U,' || NEW.sid || ',' || NEW.ssid || ',' || ((NEW.bid IS NULL)::int - (OLD.bid IS NULL)::int) || ',' || txid_current()); " +
+		"END IF; RETURN NULL; END; $$ LANGUAGE plpgsql;",
+		"CREATE OR REPLACE FUNCTION ticketmaster_notify_bookings() RETURNS trigger AS $$ BEGIN " +
+		"IF TG_OP = 'DELETE' THEN PERFORM pg_notify('" + CHANGE_CHANNEL + "', 'bookings,D,' || OLD.sid || ',' || OLD.bid || ',0,' || txid_current()); " +
+		"ELSE PERFORM pg_notify('" + CHANGE_CHANNEL + "', 'bookings,' || left(TG_OP, 1) || ',' || NEW.sid || ',' || NEW.bid || ',0,' || txid_current()); " +
+		"END IF; RETURN NULL; END; $$ LANGUAGE plpgsql;",
+		"CREATE OR REPLACE FUNCTION ticketmaster_notify_shows() RETURNS trigger AS $$ BEGIN " +
+		"IF TG_OP = 'DELETE' THEN PERFORM pg_notify('" + CHANGE_CHANNEL + "', 'shows,D,' || OLD.sid || ',' || OLD.sid || ',0,' || txid_current()); " +
+		"ELSE PERFORM pg_notify('" + CHANGE_CHANNEL + "', 'shows,' || left(TG_OP, 1) || ',' || NEW.sid || ',' || NEW.sid || ',0,' || txid_current()); " +
+		"END IF; RETURN NULL; END; $$ LANGUAGE plpgsql;",
+		"CREATE OR REPLACE FUNCTION ticketmaster_notify_users() RETURNS trigger AS $$ BEGIN " +
+		"PERFORM pg_notify('" + CHANGE_CHANNEL + "', 'users,' || left(TG_OP, 1) || ',0,' || OLD.email || ',0,' || txid_current()); " +
+		"RETURN NULL; END; $$ LANGUAGE plpgsql;",
+		"CREATE OR REPLACE FUNCTION ticketmaster_change_feed_version() RETURNS int AS 'SELECT " + CHANGE_FEED_VERSION + "' LANGUAGE sql;"
+	};
+
+	// trigger name, table, events, function
+	static final String[][] CHANGE_TRIGGERS = {
+		{"ticketmaster_showseats_changes", "showseats", "AFTER INSERT OR UPDATE OR DELETE", "ticketmaster_notify_showseats"},
+		{"ticketmaster_bookings_changes", "bookings", "AFTER INSERT OR UPDATE OR DELETE", "ticketmaster_notify_bookings"},
+		{"ticketmaster_shows_changes", "shows", "AFTER INSERT OR UPDATE OR DELETE", "ticketmaster_notify_shows"},
+		{"ticketmaster_users_changes", "users", "AFTER UPDATE OF email, pwd OR DELETE", "ticketmaster_notify_users"}
+	};
+
+	static volatile boolean changeTriggersReady = false;
+	static ChangeFeed changeFeed = null;
+	static final SeatAvailabilityView seatAvailability = new SeatAvailabilityView();
+
+	/**
+	 * Installs the change-feed trigger functions and triggers unless the
+	 * current version is already in place, which is the normal case and only
+	 * costs a catalog read.  Triggers are never dropped, so feeds running in
+	 * other terminals never see a gap: functions are replaced in place and
+	 * missing triggers are created, all in one transaction under an advisory
+	 * lock so concurrent installers do not collide and a failure leaves the
+	 * previous state intact.
+	 */
+	static void installChangeTriggers(Ticketmaster esql) throws SQLException {
+		if (changeTriggersInstalled(esql)) return;
+		Connection connection = esql._connection;
+		boolean autoCommit = connection.getAutoCommit();
+		connection.setAutoCommit(false);
+		try {
+			esql.executeQuery("SELECT pg_advisory_xact_lock(hashtext('" + CHANGE_CHANNEL + "'));");
+			for (String sql : CHANGE_FUNCTIONS) {
+				esql.executeUpdate(sql);
+			}
+			for (String[] trigger : CHANGE_TRIGGERS) {
+				esql.executeUpdate(String.format(
+					"DO $$ BEGIN IF NOT EXISTS (SELECT 1 FROM pg_trigger WHERE tgname='%s' AND tgrelid='%s'::regclass) THEN " +
+					"CREATE TRIGGER %s %s ON %s FOR EACH ROW EXECUTE PROCEDURE %s(); END IF; END $$;",
+					trigger[0], trigger[1], trigger[0], trigger[2], trigger[1], trigger[3]));
+			}
+			connection.commit();
+		} catch (SQLException e) {
+			connection.rollback();
+			throw e;
+		} finally {
+			connection.setAutoCommit(autoCommit);
+		}
+	}
+
+	static boolean changeTriggersInstalled(Ticketmaster esql) throws SQLException {
+		StringBuilder names = new StringBuilder();
+		for (String[] trigger : CHANGE_TRIGGERS) {
+			if (names.length() > 0) names.append(", ");
+			names.append('\'').append(trigger[0]).append('\'');
+		}
+		List<List<String>> result = esql.executeQueryAndReturnResult(String.format(
+			"SELECT COUNT(*), to_regproc('ticketmaster_change_feed_version') IS NOT NULL FROM pg_trigger WHERE NOT tgisinternal AND tgname IN (%s);", names));
+		if (Integer.parseInt(result.get(0).get(0)) != CHANGE_TRIGGERS.length || !"t".equals(result.get(0).get(1))) return false;
+		result = esql.executeQueryAndReturnResult("SELECT ticketmaster_change_feed_version();");
+		return Integer.parseInt(result.get(0).get(0)) == CHANGE_FEED_VERSION;
+	}
+
+	/**
+	 * Called once at startup.  Without the triggers the feed would see
+	 * nothing, so caching stays off if they cannot be installed.
+	 */
+	static void setupChangeFeed(Ticketmaster esql) {
+		try {
+			installChangeTriggers(esql);
+			changeTriggersReady = true;
+		} catch (SQLException e) {
+			System.err.println("Change-feed triggers unavailable, results will not be cached: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Makes sure the change feed is running, starting it on first use or when
+	 * the previous thread has died.  This only LISTENs and starts the thread;
+	 * the triggers come from setupChangeFeed at startup.
+	 * Everything cached before a (re)start may have missed changes, so the
+	 * caches are cleared whenever a new feed is started.
+	 *
+	 * @return true if the feed is running and caches can be trusted
+	 */
+	static synchronized boolean ensureChangeFeed(Ticketmaster esql) {
+		if (changeFeed != null && changeFeed.isAlive()) return true;
+		if (changeFeed != null) {
+			changeFeed.close();
+			changeFeed = null;
+		}
+		if (!changeTriggersReady) return false;
+		try {
+			ChangeFeed feed = new ChangeFeed(DriverManager.getConnection(esql._url, esql._user, esql._passwd));
+			feed.subscribe(new ChangeListener() {
+				public void onChanges(List<ChangeEvent> events) {
+					invalidateReportCache();
+				}
+
+				public void onFeedLost() {
+					invalidateReportCache();
+				}
+			});
+			feed.subscribe(new ChangeListener() {
+				public void onChanges(List<ChangeEvent> events) {
+					for (ChangeEvent event : events) {
+						if (event.table.equals("users")) authCache.evict(event.id);
+					}
+				}
+
+				public void onFeedLost() {
+					authCache.clear();
+				}
+			});
+			feed.subscribe(seatAvailability);
+			invalidateReportCache();
+			authCache.clear();
+			seatAvailability.clear();
+			feed.start();
+			changeFeed = feed;
+			return true;
+		} catch (Exception e) {
+			System.err.println("Change feed unavailable, results will not be cached: " + e.toString());
+			return false;
+		}
+	}
+
+	public static void WatchSeatAvailability(Ticketmaster esql) {//20
+		if (!ensureChangeFeed(esql)) return;
+		try {
+			System.out.println("Show IDs to watch (space separated): ");
+			Scanner s = new Scanner(in.readLine());
+			while (s.hasNextInt()) {
+				int sid = s.nextInt();
+				if (!seatAvailability.track(changeFeed, sid)) {
+					System.out.println(String.format("Error: Show %d has no seats.", sid));
+				}
+			}
+			s.close();
+			do {
+				if (!changeFeed.isAlive()) {
+					System.out.println("Error: Change feed stopped; choose this option again to restart it.");
+					return;
+				}
+				for (Map.Entry<Integer, Integer> entry : seatAvailability.snapshot().entrySet()) {
+					System.out.println(String.format("Show %d: %d seat(s) free", entry.getKey(), entry.getValue()));
+				}
+				System.out.println(String.format("(%d change batches received) Press Enter to refresh, q to return: ", changeFeed.batches()));
+			} while (!in.readLine().trim().equalsIgnoreCase("q"));
+		} catch (Exception e) {
+			System.err.println(e.toString());
+		}
+	}
+
+	/**
+	 * A coalesced change: every notification for one table and key (the show,
+	 * or the e-mail for users) within a batch window folds into a single event.
+	 * For showseats, delta is the net change in free seats; op is the last
+	 * operation seen.
+	 */
+	static class ChangeEvent {
+		final String table;
+		final int sid;
+		final String id;
+		final long txid;
+		char op;
+		int delta;
+		int rows;
+
+		ChangeEvent(String table, char op, int sid, String id, int delta, long txid) {
+			this.table = table;
+			this.op = op;
+			this.sid = sid;
+			this.id = id;
+			this.delta = delta;
+			this.txid = txid;
+			this.rows = 1;
+		}
+
+		static ChangeEvent parse(String payload) {
+			String[] parts = payload.split(",", -1);
+			int n = parts.length;
+			if (n < 6 || parts[1].isEmpty()) return null;
+			// the id may itself contain commas (e-mail addresses)
+			StringBuilder id = new StringBuilder(parts[3]);
+			for (int i = 4; i < n - 2; i++) {
+				id.append(',').append(parts[i]);
+			}
+			try {
+				return new ChangeEvent(parts[0], parts[1].charAt(0), Integer.parseInt(parts[2]), id.toString(),
+					Integer.parseInt(parts[n - 2]), Long.parseLong(parts[n - 1]));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		String key() {
+			return table.equals("users") ? table + ":" + id : table + ":" + sid;
+		}
+
+		void merge(ChangeEvent later) {
+			op = later.op;
+			delta += later.delta;
+			rows += later.rows;
+		}
+	}
+
+	public interface ChangeListener {
+		void onChanges(List<ChangeEvent> events);
+
+		/**
+		 * Called once if the feed stops unexpectedly; changes may have been missed.
+		 */
+		void onFeedLost();
+	}
+
+	/**
+	 * A transaction snapshot as returned by txid_current_snapshot(), in the
+	 * form "xmin:xmax:xip,...".
+	 */
+	static class TxSnapshot {
+		final long xmin;
+		final long xmax;
+		final Set<Long> inProgress = new HashSet<>();
+
+		TxSnapshot(String text) {
+			String[] parts = text.split(":", -1);
+			xmin = Long.parseLong(parts[0]);
+			xmax = Long.parseLong(parts[1]);
+			if (parts.length > 2 && !parts[2].isEmpty()) {
+				for (String xip : parts[2].split(",")) {
+					inProgress.add(Long.parseLong(xip));
+				}
+			}
+		}
+
+		/**
+		 * @return true if the changes of transaction txid are visible in this snapshot
+		 */
+		boolean includes(long txid) {
+			return txid < xmin || (txid < xmax && !inProgress.contains(txid));
+		}
+	}
+
+	/**
+	 * Listens on CHANGE_CHANNEL and delivers coalesced batches to subscribers
+	 * from its own thread.  Seat counts for the SeatAvailabilityView are read
+	 * on the same connection and thread, between polls: pending changes are
+	 * delivered first, and for changes that arrive afterwards the count's
+	 * snapshot decides whether they are already included.  The driver is not
+	 * on the compile classpath, so org.postgresql.PGConnection is reached
+	 * through reflection.
+	 */
+	static class ChangeFeed implements Runnable {
+		private final Connection connection;
+		private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+		private final ConcurrentLinkedQueue<Integer> seatCountRequests = new ConcurrentLinkedQueue<>();
+		// per tracked show, the snapshot its seat count was read in (feed thread only)
+		private final Map<Integer, TxSnapshot> seatSnapshots = new HashMap<>();
+		private final AtomicLong batches = new AtomicLong();
+		private final Thread thread = new Thread(this, "change-feed");
+		private volatile boolean closed = false;
+		private PreparedStatement seatCount;
+		private SeatAvailabilityView seatView;
+		private Object pgConnection;
+		private Method getNotifications;
+		private Method getParameter;
+		private boolean timedPoll;
+
+		ChangeFeed(Connection connection) throws Exception {
+			this.connection = connection;
+			Class<?> pgClass = Class.forName("org.postgresql.PGConnection");
+			this.pgConnection = connection.unwrap(pgClass);
+			this.getParameter = Class.forName("org.postgresql.PGNotification").getMethod("getParameter");
+			try {
+				this.getNotifications = pgClass.getMethod("getNotifications", int.class);
+				this.timedPoll = true;
+			} catch (NoSuchMethodException e) {
+				// older drivers only return what has already arrived
+				this.getNotifications = pgClass.getMethod("getNotifications");
+				this.timedPoll = false;
+			}
+			Statement stmt = connection.createStatement();
+			stmt.execute("LISTEN " + CHANGE_CHANNEL + ";");
+			stmt.close();
+			this.seatCount = connection.prepareStatement(
+				"SELECT COUNT(*), SUM(CASE WHEN bid IS NULL THEN 1 ELSE 0 END), txid_current_snapshot()::text FROM showseats WHERE sid=?;");
+			thread.setDaemon(true);
+		}
+
+		void subscribe(ChangeListener listener) {
+			listeners.add(listener);
+			if (listener instanceof SeatAvailabilityView) seatView = (SeatAvailabilityView) listener;
+		}
+
+		void start() {
+			thread.start();
+		}
+
+		boolean isAlive() {
+			return thread.isAlive() && !closed;
+		}
+
+		long batches() {
+			return batches.get();
+		}
+
+		/**
+		 * Asks the feed thread to read the free seat count of a show and pass it
+		 * to the subscribed SeatAvailabilityView.
+		 */
+		void requestSeatCount(int sid) {
+			seatCountRequests.offer(sid);
+		}
+
+		void close() {
+			closed = true;
+			try {
+				thread.join(CHANGE_BATCH_MILLIS * 4);
+				connection.close();
+			} catch (Exception e) {
+				// ignored.
+			}
+		}
+
+		public void run() {
+			Map<String, ChangeEvent> pending = new LinkedHashMap<>();
+			long windowEnd = 0;
+			while (!closed) {
+				try {
+					if (!seatCountRequests.isEmpty()) {
+						// everything received so far committed before the counts are read
+						if (!pending.isEmpty()) {
+							deliver(new ArrayList<>(pending.values()));
+							pending.clear();
+							windowEnd = 0;
+						}
+						Integer sid;
+						while ((sid = seatCountRequests.poll()) != null) {
+							readSeatCount(sid);
+						}
+					}
+					for (Object notification : poll()) {
+						ChangeEvent event = ChangeEvent.parse((String) getParameter.invoke(notification));
+						if (event == null) continue;
+						TxSnapshot counted = event.table.equals("showseats") ? seatSnapshots.get(event.sid) : null;
+						// already part of the count the view started from
+						if (counted != null && counted.includes(event.txid)) event.delta = 0;
+						ChangeEvent existing = pending.get(event.key());
+						if (existing == null) {
+							pending.put(event.key(), event);
+						} else {
+							existing.merge(event);
+						}
+						if (windowEnd == 0) windowEnd = System.currentTimeMillis() + CHANGE_BATCH_MILLIS;
+					}
+					if (!pending.isEmpty() && (System.currentTimeMillis() >= windowEnd || pending.size() >= CHANGE_BATCH_MAX)) {
+						deliver(new ArrayList<>(pending.values()));
+						pending.clear();
+						windowEnd = 0;
+					}
+				} catch (Exception e) {
+					if (closed) return;
+					System.err.println("Change feed stopped: " + e.toString());
+					closed = true;
+					for (ChangeListener listener : listeners) {
+						listener.onFeedLost();
+					}
+					try {
+						connection.close();
+					} catch (SQLException ignored) {
+						// ignored.
+					}
+					return;
+				}
+			}
+		}
+
+		private void readSeatCount(int sid) throws SQLException {
+			seatCount.setInt(1, sid);
+			ResultSet rs = seatCount.executeQuery();
+			rs.next();
+			Integer free = rs.getInt(1) == 0 ? null : Integer.valueOf(rs.getInt(2));
+			TxSnapshot snapshot = new TxSnapshot(rs.getString(3));
+			rs.close();
+			if (free == null) {
+				seatSnapshots.remove(sid);
+			} else {
+				seatSnapshots.put(sid, snapshot);
+			}
+			if (seatView != null) seatView.loaded(sid, free);
+		}
+
+		private Object[] poll() throws Exception {
+			Object[] notifications;
+			if (timedPoll) {
+				notifications = (Object[]) getNotifications.invoke(pgConnection, CHANGE_BATCH_MILLIS);
+			} else {
+				// a round trip makes the driver read pending notifications
+				Statement stmt = connection.createStatement();
+				stmt.execute("SELECT 1;");
+				stmt.close();
+				notifications = (Object[]) getNotifications.invoke(pgConnection);
+				if (notifications == null) Thread.sleep(CHANGE_BATCH_MILLIS);
+			}
+			return notifications == null ? new Object[0] : notifications;
+		}
+
+		private void deliver(List<ChangeEvent> batch) {
+			batches.incrementAndGet();
+			for (ChangeListener listener : listeners) {
+				try {
+					listener.onChanges(batch);
+				} catch (RuntimeException e) {
+					System.err.println(e.toString());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Free seat counts for the shows being watched.  A show's count is read by
+	 * the change feed thread, ordered with the notifications it receives, and
+	 * then kept current from showseats deltas; deleted shows are dropped.
+	 * Tracking a show again re-reads its count.
+	 */
+	static class SeatAvailabilityView implements ChangeListener {
+		private final Map<Integer, Integer> free = new TreeMap<>();
+		// shows whose count has been requested but not read yet
+		private final Set<Integer> loading = new HashSet<>();
+
+		/**
+		 * Starts watching a show and waits for its count to be read.
+		 *
+		 * @return false if the show has no seats
+		 */
+		boolean track(ChangeFeed feed, int sid) throws SQLException, InterruptedException {
+			long deadline = System.currentTimeMillis() + SEAT_COUNT_TIMEOUT_MILLIS;
+			synchronized (this) {
+				free.remove(sid);
+				loading.add(sid);
+				feed.requestSeatCount(sid);
+				while (loading.contains(sid)) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0 || !feed.isAlive()) {
+						loading.remove(sid);
+						throw new SQLException(String.format("Timed out reading the seats of show %d", sid));
+					}
+					wait(Math.min(wait, CHANGE_BATCH_MILLIS));
+				}
+				return free.containsKey(sid);
+			}
+		}
+
+		synchronized void loaded(int sid, Integer count) {
+			if (!loading.remove(sid)) return;
+			if (count != null) free.put(sid, count);
+			notifyAll();
+		}
+
+		synchronized void clear() {
+			free.clear();
+		}
+
+		synchronized Map<Integer, Integer> snapshot() {
+			return new TreeMap<>(free);
+		}
+
+		public synchronized void onChanges(List<ChangeEvent> events) {
+			for (ChangeEvent event : events) {
+				Integer count = free.get(event.sid);
+				if (count == null) continue;
+				if (event.table.equals("shows") && event.op == 'D') {
+					free.remove(event.sid);
+				} else if (event.table.equals("showseats")) {
+					free.put(event.sid, count + event.delta);
+				}
+			}
+		}
+
+		public synchronized void onFeedLost() {
+			free.clear();
+		}
+	}
 }
\ No newline at end of file